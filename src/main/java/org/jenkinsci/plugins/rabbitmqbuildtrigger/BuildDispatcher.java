@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Dispatch stage between message receipt and build scheduling.
+ *
+ * Requests are buffered in a bounded priority queue and scheduled by a
+ * dedicated worker thread, so urgent requests go first whenever requests pile
+ * up. If the queue is full, the dispatching thread blocks until the worker
+ * catches up, which pushes back on message delivery. Delayed requests take
+ * their place in the queue when they are dispatched, are held by a scheduler
+ * of this stage and join the worker when they are due, so they never block
+ * a shared thread.
+ */
+final class BuildDispatcher {
+
+    static final int DEFAULT_CAPACITY =
+            Integer.getInteger(BuildDispatcher.class.getName() + ".capacity", 10000);
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private static final Logger LOGGER = Logger.getLogger(BuildDispatcher.class.getName());
+
+    private final int capacity;
+    private final Semaphore permits;
+    private final AtomicLong counter = new AtomicLong();
+    private final ThreadPoolExecutor worker;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Creates instance with default capacity.
+     */
+    BuildDispatcher() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates instance with specified capacity.
+     *
+     * @param capacity
+     *            the number of requests which can be pending.
+     */
+    BuildDispatcher(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.permits = new Semaphore(this.capacity);
+        this.worker = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "RabbitMQ build dispatcher")) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                permits.release();
+                if (t != null) {
+                    LOGGER.log(Level.WARNING, "Failed to dispatch build request.", t);
+                }
+            }
+        };
+        this.worker.allowCoreThreadTimeOut(true);
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                new NamingThreadFactory(new DaemonThreadFactory(), "RabbitMQ build dispatcher delay"));
+    }
+
+    /**
+     * Dispatches request. Blocks while the queue is full, including delayed
+     * requests which are not due yet.
+     *
+     * @param request
+     *            the request.
+     * @param delay
+     *            the delay in seconds.
+     */
+    void dispatch(final Request request, int delay) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.WARNING, "Interrupted while waiting for dispatch queue.", e);
+            return;
+        }
+        if (delay <= 0) {
+            execute(request);
+            return;
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    execute(request);
+                }
+            }, delay, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            LOGGER.log(Level.WARNING, "Dispatcher is stopped. Build request is dropped.", e);
+        }
+    }
+
+    /**
+     * Passes request which holds a permit to worker.
+     */
+    private void execute(Request request) {
+        request.order = counter.getAndIncrement();
+        try {
+            worker.execute(request);
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            LOGGER.log(Level.WARNING, "Dispatcher is stopped. Build request is dropped.", e);
+        }
+    }
+
+    /**
+     * Waits until all pending requests are scheduled, including delayed ones.
+     *
+     * @param timeout
+     *            the timeout.
+     * @param unit
+     *            the unit of timeout.
+     * @return true if no request is pending.
+     * @throws InterruptedException
+     *            if interrupted while waiting.
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!permits.tryAcquire(capacity, timeout, unit)) {
+            return false;
+        }
+        permits.release(capacity);
+        return true;
+    }
+
+    /**
+     * Stops worker. Pending requests are dropped, but they are still in
+     * trigger journal as received and can be replayed.
+     */
+    void shutdown() {
+        int dropped = scheduler.shutdownNow().size() + worker.shutdownNow().size();
+        if (dropped > 0) {
+            LOGGER.log(Level.WARNING, "Dropped {0} pending build request(s) on shutdown.", dropped);
+        }
+        try {
+            // let the running request finish before journal is closed.
+            worker.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Request to be dispatched. Higher priority goes first, then FIFO.
+     */
+    abstract static class Request implements Runnable, Comparable<Request> {
+        private final int priority;
+        private long order;
+
+        /**
+         * Creates instance with specified parameter.
+         *
+         * @param priority
+         *            the priority.
+         */
+        Request(int priority) {
+            this.priority = priority;
+        }
+
+        public int compareTo(Request o) {
+            if (priority != o.priority) {
+                return priority > o.priority ? -1 : 1;
+            }
+            return order < o.order ? -1 : (order == o.order ? 0 : 1);
+        }
+    }
+}
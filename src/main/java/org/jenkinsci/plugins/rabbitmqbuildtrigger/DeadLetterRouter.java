@@ -0,0 +1,176 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jenkinsci.plugins.rabbitmqconsumer.publishers.PublishChannel;
+import org.jenkinsci.plugins.rabbitmqconsumer.publishers.PublishChannelFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Handles rejected or unmatched messages.
+ *
+ * Each message is counted by reason, logged with rate limit and truncated
+ * body, then republished to dead-letter exchange if it is configured.
+ */
+public class DeadLetterRouter {
+
+    /**
+     * Reason why message is dead-lettered.
+     */
+    public enum Reason {
+        /** Content type is not JSON. */
+        INVALID_CONTENT_TYPE,
+        /** Body is not valid JSON or lacks required keys. */
+        INVALID_FORMAT,
+        /** No project matches. */
+        UNMATCHED,
+        /** Project has no token. */
+        NO_TOKEN,
+        /** Token does not match. */
+        TOKEN_MISMATCH,
+        /** Project is not buildable. */
+        NOT_BUILDABLE
+    }
+
+    /**
+     * App id of dead-lettered messages. It differs from
+     * {@link RemoteBuildTrigger#PLUGIN_APPID} so they are not consumed again.
+     */
+    public static final String DEAD_LETTER_APPID = RemoteBuildTrigger.PLUGIN_APPID + "-dead-letter";
+
+    public static final String HEADER_REASON = "dead-letter-reason";
+    public static final String HEADER_DETAIL = "dead-letter-detail";
+    public static final String HEADER_QUEUE = "dead-letter-queue";
+
+    private static final int LOG_LIMIT_PER_MINUTE =
+            Integer.getInteger(DeadLetterRouter.class.getName() + ".logLimitPerMinute", 10);
+    private static final int LOG_BODY_LENGTH =
+            Integer.getInteger(DeadLetterRouter.class.getName() + ".logBodyLength", 256);
+    private static final long WINDOW_MILLIS = 60 * 1000L;
+
+    private static final Logger LOGGER = Logger.getLogger(DeadLetterRouter.class.getName());
+
+    private final AtomicLongArray counts = new AtomicLongArray(Reason.values().length);
+    private final long[] windowStart = new long[Reason.values().length];
+    private final int[] logged = new int[Reason.values().length];
+    private final int[] suppressed = new int[Reason.values().length];
+
+    /**
+     * Handles rejected message.
+     *
+     * @param reason
+     *            the reason.
+     * @param detail
+     *            the detail, or null.
+     * @param queueName
+     *            the queue name.
+     * @param contentType
+     *            the content type.
+     * @param headers
+     *            the message headers.
+     * @param body
+     *            the message body.
+     */
+    public void reject(Reason reason, String detail, String queueName, String contentType,
+            Map<String, Object> headers, byte[] body) {
+        counts.incrementAndGet(reason.ordinal());
+        log(reason, detail, queueName, body);
+        publish(reason, detail, queueName, contentType, headers, body);
+    }
+
+    /**
+     * Gets counts of dead-lettered messages by reason.
+     *
+     * @return the map of reason name to count.
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (Reason r : Reason.values()) {
+            map.put(r.name(), counts.get(r.ordinal()));
+        }
+        return map;
+    }
+
+    private void log(Reason reason, String detail, String queueName, byte[] body) {
+        if (!LOGGER.isLoggable(Level.WARNING)) {
+            return;
+        }
+        int i = reason.ordinal();
+        int dropped;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - windowStart[i] >= WINDOW_MILLIS) {
+                dropped = suppressed[i];
+                windowStart[i] = now;
+                logged[i] = 0;
+                suppressed[i] = 0;
+            } else {
+                dropped = 0;
+            }
+            if (logged[i] >= LOG_LIMIT_PER_MINUTE) {
+                suppressed[i]++;
+                return;
+            }
+            logged[i]++;
+        }
+        if (dropped > 0) {
+            LOGGER.log(Level.WARNING, "{0} messages with reason {1} were not logged in last minute.",
+                    new Object[] {dropped, reason});
+        }
+        LOGGER.log(Level.WARNING, "Rejected message from {0}: {1} {2} body: {3}",
+                new Object[] {queueName, reason, StringUtils.defaultString(detail), truncate(body)});
+    }
+
+    private void publish(Reason reason, String detail, String queueName, String contentType,
+            Map<String, Object> headers, byte[] body) {
+        RemoteBuildGlobalConfiguration config = RemoteBuildGlobalConfiguration.get();
+        if (config == null || config.getDeadLetterExchange() == null) {
+            return;
+        }
+        PublishChannel ch = PublishChannelFactory.getPublishChannel();
+        if (ch == null || !ch.isOpen()) {
+            return;
+        }
+
+        Map<String, Object> h = new HashMap<String, Object>();
+        if (headers != null) {
+            h.putAll(headers);
+        }
+        h.put(HEADER_REASON, reason.name());
+        h.put(HEADER_QUEUE, StringUtils.defaultString(queueName));
+        if (detail != null) {
+            h.put(HEADER_DETAIL, detail);
+        }
+
+        BasicProperties.Builder builder = new BasicProperties.Builder();
+        builder.appId(DEAD_LETTER_APPID);
+        builder.contentType(contentType);
+        builder.headers(h);
+
+        // Do not wait for the result so that receiving is not blocked.
+        ch.publish(config.getDeadLetterExchange(), StringUtils.defaultString(config.getDeadLetterRoutingKey()),
+                builder.build(), body != null ? body : new byte[0]);
+    }
+
+    private static String truncate(byte[] body) {
+        if (body == null) {
+            return "";
+        }
+        int length = Math.min(body.length, LOG_BODY_LENGTH);
+        String s;
+        try {
+            s = new String(body, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            s = "";
+        }
+        return body.length > length ? s + "... (" + body.length + " bytes)" : s;
+    }
+}
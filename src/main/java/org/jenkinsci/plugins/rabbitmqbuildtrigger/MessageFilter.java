@@ -0,0 +1,421 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+/**
+ * Compiled filter expression for application message.
+ *
+ * <pre>
+ * expr       := or
+ * or         := and ( '||' and )*
+ * and        := unary ( '&amp;&amp;' unary )*
+ * unary      := '!' unary | '(' expr ')' | comparison
+ * comparison := path [ ( '==' | '!=' | '=~' ) value ]
+ * path       := '$' ( '.' name | '[' index ']' | '[' string ']' )*
+ *             | 'header' ( '.' name | '[' string ']' )
+ * value      := string | word
+ * </pre>
+ *
+ * <code>==</code> and <code>!=</code> compare string form of the value,
+ * <code>=~</code> matches whole value with regular expression, and path
+ * without operator is true if the value exists and is not null or false.
+ * For example: <code>$.branch =~ 'release/.*' &amp;&amp; header.env == prod</code>
+ */
+public abstract class MessageFilter {
+
+    /**
+     * Filter which never matches. Used when expression is invalid.
+     */
+    static final class Invalid extends MessageFilter {
+        private final String error;
+
+        /**
+         * Creates instance with specified parameter.
+         *
+         * @param error
+         *            the reason why expression is invalid.
+         */
+        Invalid(String error) {
+            this.error = error;
+        }
+
+        /**
+         * Gets the reason why expression is invalid.
+         *
+         * @return the error message.
+         */
+        String getError() {
+            return error;
+        }
+
+        @Override
+        public boolean matches(JSONObject json, Map<String, Object> headers) {
+            return false;
+        }
+    }
+
+    /**
+     * Evaluates this filter.
+     *
+     * @param json
+     *            the message body.
+     * @param headers
+     *            the message headers, or null.
+     * @return true if message matches.
+     */
+    public abstract boolean matches(JSONObject json, Map<String, Object> headers);
+
+    /**
+     * Compiles filter expression.
+     *
+     * @param expression
+     *            the expression.
+     * @return the compiled filter.
+     * @throws ParseException
+     *             if expression is invalid.
+     */
+    public static MessageFilter compile(String expression) throws ParseException {
+        Parser parser = new Parser(expression);
+        MessageFilter filter = parser.parseOr();
+        parser.skipSpaces();
+        if (!parser.atEnd()) {
+            throw parser.error("Unexpected character '" + parser.peek() + "'");
+        }
+        return filter;
+    }
+
+    /**
+     * Recursive descent parser.
+     */
+    private static final class Parser {
+        private final String s;
+        private int pos;
+
+        private Parser(String s) {
+            this.s = s;
+        }
+
+        private MessageFilter parseOr() throws ParseException {
+            MessageFilter left = parseAnd();
+            while (consume("||")) {
+                left = new Or(left, parseAnd());
+            }
+            return left;
+        }
+
+        private MessageFilter parseAnd() throws ParseException {
+            MessageFilter left = parseUnary();
+            while (consume("&&")) {
+                left = new And(left, parseUnary());
+            }
+            return left;
+        }
+
+        private MessageFilter parseUnary() throws ParseException {
+            if (consume("!")) {
+                return new Not(parseUnary());
+            }
+            if (consume("(")) {
+                MessageFilter inner = parseOr();
+                if (!consume(")")) {
+                    throw error("')' expected");
+                }
+                return inner;
+            }
+            return parseComparison();
+        }
+
+        private MessageFilter parseComparison() throws ParseException {
+            Path path = parsePath();
+            if (consume("==")) {
+                return new Equals(path, parseValue(), true);
+            }
+            if (consume("!=")) {
+                return new Equals(path, parseValue(), false);
+            }
+            if (consume("=~")) {
+                int start = pos;
+                String regex = parseValue();
+                try {
+                    return new Matches(path, Pattern.compile(regex));
+                } catch (PatternSyntaxException e) {
+                    throw new ParseException("Invalid regular expression: " + e.getDescription(), start);
+                }
+            }
+            return new Exists(path);
+        }
+
+        private Path parsePath() throws ParseException {
+            skipSpaces();
+            List<Object> segments = new ArrayList<Object>();
+            boolean header;
+            if (s.startsWith("$", pos)) {
+                pos++;
+                header = false;
+            } else if (s.startsWith("header", pos)) {
+                pos += "header".length();
+                header = true;
+            } else {
+                throw error("'$' or 'header' expected");
+            }
+            while (!atEnd()) {
+                char c = peek();
+                if (c == '.') {
+                    pos++;
+                    int start = pos;
+                    while (!atEnd() && isNameChar(peek())) {
+                        pos++;
+                    }
+                    if (start == pos) {
+                        throw error("Name expected");
+                    }
+                    segments.add(s.substring(start, pos));
+                } else if (c == '[') {
+                    pos++;
+                    if (!atEnd() && (peek() == '\'' || peek() == '"')) {
+                        segments.add(parseString());
+                    } else {
+                        int start = pos;
+                        while (!atEnd() && Character.isDigit(peek())) {
+                            pos++;
+                        }
+                        if (start == pos || header) {
+                            throw error("Index or quoted name expected");
+                        }
+                        try {
+                            segments.add(Integer.valueOf(s.substring(start, pos)));
+                        } catch (NumberFormatException e) {
+                            throw error("Index too large");
+                        }
+                    }
+                    if (atEnd() || peek() != ']') {
+                        throw error("']' expected");
+                    }
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (header && segments.size() != 1) {
+                throw error("Header name expected");
+            }
+            return new Path(header, segments.toArray());
+        }
+
+        private String parseValue() throws ParseException {
+            skipSpaces();
+            if (!atEnd() && (peek() == '\'' || peek() == '"')) {
+                return parseString();
+            }
+            int start = pos;
+            while (!atEnd() && !Character.isWhitespace(peek()) && "()&|'\"".indexOf(peek()) < 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("Value expected");
+            }
+            return s.substring(start, pos);
+        }
+
+        private String parseString() throws ParseException {
+            char quote = s.charAt(pos++);
+            StringBuilder sb = new StringBuilder();
+            while (!atEnd()) {
+                char c = s.charAt(pos++);
+                if (c == quote) {
+                    return sb.toString();
+                }
+                if (c == '\\' && !atEnd()) {
+                    c = s.charAt(pos++);
+                }
+                sb.append(c);
+            }
+            throw error("Unterminated string");
+        }
+
+        private boolean consume(String token) {
+            skipSpaces();
+            if (s.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSpaces() {
+            while (!atEnd() && Character.isWhitespace(peek())) {
+                pos++;
+            }
+        }
+
+        private boolean atEnd() {
+            return pos >= s.length();
+        }
+
+        private char peek() {
+            return s.charAt(pos);
+        }
+
+        private ParseException error(String message) {
+            return new ParseException(message + " at " + pos + ": " + s, pos);
+        }
+
+        private static boolean isNameChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '-';
+        }
+    }
+
+    /**
+     * Path to a value in body or headers.
+     */
+    private static final class Path {
+        private final boolean header;
+        private final Object[] segments;
+
+        private Path(boolean header, Object[] segments) {
+            this.header = header;
+            this.segments = segments;
+        }
+
+        private Object resolve(JSONObject json, Map<String, Object> headers) {
+            if (header) {
+                return headers != null ? headers.get(segments[0]) : null;
+            }
+            Object cur = json;
+            for (Object seg : segments) {
+                if (cur instanceof JSONObject && seg instanceof String) {
+                    cur = ((JSONObject) cur).opt((String) seg);
+                } else if (cur instanceof JSONArray && seg instanceof Integer) {
+                    JSONArray array = (JSONArray) cur;
+                    int i = (Integer) seg;
+                    cur = i < array.size() ? array.get(i) : null;
+                } else {
+                    return null;
+                }
+            }
+            return cur instanceof JSONNull ? null : cur;
+        }
+
+        private String resolveString(JSONObject json, Map<String, Object> headers) {
+            Object value = resolve(json, headers);
+            return value != null ? value.toString() : null;
+        }
+    }
+
+    /**
+     * Path exists and is not null or false.
+     */
+    private static final class Exists extends MessageFilter {
+        private final Path path;
+
+        private Exists(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public boolean matches(JSONObject json, Map<String, Object> headers) {
+            Object value = path.resolve(json, headers);
+            return value != null && !Boolean.FALSE.equals(value) && !"false".equals(value.toString());
+        }
+    }
+
+    /**
+     * String equality.
+     */
+    private static final class Equals extends MessageFilter {
+        private final Path path;
+        private final String value;
+        private final boolean expected;
+
+        private Equals(Path path, String value, boolean expected) {
+            this.path = path;
+            this.value = value;
+            this.expected = expected;
+        }
+
+        @Override
+        public boolean matches(JSONObject json, Map<String, Object> headers) {
+            return value.equals(path.resolveString(json, headers)) == expected;
+        }
+    }
+
+    /**
+     * Regular expression match.
+     */
+    private static final class Matches extends MessageFilter {
+        private final Path path;
+        private final Pattern pattern;
+
+        private Matches(Path path, Pattern pattern) {
+            this.path = path;
+            this.pattern = pattern;
+        }
+
+        @Override
+        public boolean matches(JSONObject json, Map<String, Object> headers) {
+            String s = path.resolveString(json, headers);
+            return s != null && pattern.matcher(s).matches();
+        }
+    }
+
+    /**
+     * Negation.
+     */
+    private static final class Not extends MessageFilter {
+        private final MessageFilter inner;
+
+        private Not(MessageFilter inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public boolean matches(JSONObject json, Map<String, Object> headers) {
+            return !inner.matches(json, headers);
+        }
+    }
+
+    /**
+     * Conjunction.
+     */
+    private static final class And extends MessageFilter {
+        private final MessageFilter left;
+        private final MessageFilter right;
+
+        private And(MessageFilter left, MessageFilter right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean matches(JSONObject json, Map<String, Object> headers) {
+            return left.matches(json, headers) && right.matches(json, headers);
+        }
+    }
+
+    /**
+     * Disjunction.
+     */
+    private static final class Or extends MessageFilter {
+        private final MessageFilter left;
+        private final MessageFilter right;
+
+        private Or(MessageFilter left, MessageFilter right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean matches(JSONObject json, Map<String, Object> headers) {
+            return left.matches(json, headers) || right.matches(json, headers);
+        }
+    }
+}
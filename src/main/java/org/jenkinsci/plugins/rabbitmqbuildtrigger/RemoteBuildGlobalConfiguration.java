@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.lang3.StringUtils;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global configuration for RabbitMQ Build Trigger.
+ */
+@Extension
+public class RemoteBuildGlobalConfiguration extends GlobalConfiguration {
+
+    private String deadLetterExchange;
+    private String deadLetterRoutingKey;
+
+    /**
+     * Creates instance and loads saved configuration.
+     */
+    public RemoteBuildGlobalConfiguration() {
+        load();
+    }
+
+    /**
+     * Gets instance.
+     *
+     * @return the instance, or null if Jenkins is not ready.
+     */
+    public static RemoteBuildGlobalConfiguration get() {
+        return GlobalConfiguration.all().get(RemoteBuildGlobalConfiguration.class);
+    }
+
+    /**
+     * Gets dead-letter exchange name.
+     *
+     * @return the exchange name, or null if dead-letter is disabled.
+     */
+    public String getDeadLetterExchange() {
+        return deadLetterExchange;
+    }
+
+    /**
+     * Sets dead-letter exchange name.
+     *
+     * @param deadLetterExchange the exchange name.
+     */
+    public void setDeadLetterExchange(String deadLetterExchange) {
+        this.deadLetterExchange = StringUtils.stripToNull(deadLetterExchange);
+    }
+
+    /**
+     * Gets dead-letter routing key.
+     *
+     * @return the routing key.
+     */
+    public String getDeadLetterRoutingKey() {
+        return deadLetterRoutingKey;
+    }
+
+    /**
+     * Sets dead-letter routing key.
+     *
+     * @param deadLetterRoutingKey the routing key.
+     */
+    public void setDeadLetterRoutingKey(String deadLetterRoutingKey) {
+        this.deadLetterRoutingKey = StringUtils.stripToNull(deadLetterRoutingKey);
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.RabbitMQBuildTrigger();
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        setDeadLetterExchange(json.optString("deadLetterExchange"));
+        setDeadLetterRoutingKey(json.optString("deadLetterRoutingKey"));
+        save();
+        return true;
+    }
+}
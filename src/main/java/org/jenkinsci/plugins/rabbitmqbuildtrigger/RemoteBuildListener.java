@@ -1,17 +1,34 @@
 package org.jenkinsci.plugins.rabbitmqbuildtrigger;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Queue;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import net.sf.json.JSONSerializer;
 
+import org.jenkinsci.plugins.rabbitmqbuildtrigger.DeadLetterRouter.Reason;
+import org.jenkinsci.plugins.rabbitmqbuildtrigger.TriggerJournal.Outcome;
 import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
 
 /**
@@ -27,11 +44,43 @@ public class RemoteBuildListener extends MessageQueueListener {
     private static final String KEY_PROJECT = "project";
     private static final String KEY_TOKEN = "token";
     private static final String KEY_PARAMETER = "parameter";
+    private static final String KEY_QUIET_PERIOD = "quietPeriod";
+    private static final String KEY_DELAY = "delay";
+    private static final String KEY_PRIORITY = "priority";
+
+    private static final int MAX_QUIET_PERIOD =
+            Integer.getInteger(RemoteBuildListener.class.getName() + ".maxQuietPeriod", 3600);
+    private static final int MAX_DELAY =
+            Integer.getInteger(RemoteBuildListener.class.getName() + ".maxDelay", 3600);
+
+    private static final String DETAIL_INVALID_FILTER = "Invalid filter: ";
+    private static final String DETAIL_NOT_OBJECT = "Not a JSON object";
+    private static final String DETAIL_NO_TOKEN = "No token set";
+    private static final String DETAIL_TOKEN_MISMATCH = "Token mismatch";
+    private static final String DETAIL_REPLAY = "Replay of seq ";
+    private static final long REPLAY_OUTCOME_MARGIN_MILLIS = 60 * 1000L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern TOKEN_PATTERN =
+            Pattern.compile("(\"" + KEY_TOKEN + "\"\\s*:\\s*)(\"(?:[^\"\\\\]|\\\\.)*\"|[^,}\\s]+)");
+
+    private static final String JOURNAL_DIR = "rabbitmq-build-trigger" + File.separator + "journal";
+    private static final boolean JOURNAL_DISABLED =
+            Boolean.getBoolean(RemoteBuildListener.class.getName() + ".journalDisabled");
+    private static final long JOURNAL_SEGMENT_SIZE =
+            Long.getLong(RemoteBuildListener.class.getName() + ".journalSegmentSize", 8 * 1024 * 1024);
+    private static final int JOURNAL_SEGMENTS =
+            Integer.getInteger(RemoteBuildListener.class.getName() + ".journalSegments", 16);
 
     private static final Logger LOGGER = Logger.getLogger(RemoteBuildListener.class.getName());
 
     private final Set<RemoteBuildTrigger> triggers = new CopyOnWriteArraySet<RemoteBuildTrigger>();
 
+    private final BuildDispatcher dispatcher = new BuildDispatcher();
+    private final DeadLetterRouter deadLetterRouter = new DeadLetterRouter();
+
+    private volatile TriggerJournal journal;
+    private ScheduledFuture<?> journalFlusher;
+
     @Override
     public String getName() {
         return PLUGIN_NAME;
@@ -71,6 +120,117 @@ public class RemoteBuildListener extends MessageQueueListener {
         triggers.remove(trigger);
     }
 
+    /**
+     * Gets trigger journal.
+     *
+     * @return the journal, or null if journal is disabled or not opened yet.
+     */
+    public TriggerJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Gets dispatch stage.
+     *
+     * @return the dispatcher.
+     */
+    BuildDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Opens trigger journal under JENKINS_HOME and starts periodic flush.
+     * Segments are indexed here so that message delivery is not stalled.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void openJournal() {
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        Jenkins jenkins = Jenkins.getInstance();
+        if (listener == null || jenkins == null || JOURNAL_DISABLED) {
+            return;
+        }
+        synchronized (listener) {
+            if (listener.journal != null) {
+                return;
+            }
+            final TriggerJournal j = new TriggerJournal(new File(jenkins.getRootDir(), JOURNAL_DIR),
+                    JOURNAL_SEGMENT_SIZE, JOURNAL_SEGMENTS);
+            listener.journalFlusher = Timer.get().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    j.flush();
+                }
+            }, TriggerJournal.FLUSH_INTERVAL_MILLIS, TriggerJournal.FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            listener.journal = j;
+        }
+    }
+
+    /**
+     * Stops dispatch stage, then stops periodic flush and closes trigger journal.
+     */
+    @Terminator
+    public static void shutdown() {
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        if (listener == null) {
+            return;
+        }
+        listener.dispatcher.shutdown();
+        synchronized (listener) {
+            if (listener.journalFlusher != null) {
+                listener.journalFlusher.cancel(false);
+                listener.journalFlusher = null;
+            }
+            if (listener.journal != null) {
+                listener.journal.close();
+                listener.journal = null;
+            }
+        }
+    }
+
+    /**
+     * Replays received messages in the given time range through the same
+     * path as {@link #onReceive}. Token is not stored in journal, so messages
+     * are replayed only if they passed token check when received. Replayed
+     * messages are journaled with the original sequence number in detail and
+     * are not dead-lettered again. They are not replayed again either.
+     *
+     * @param from
+     *            the start time in millis.
+     * @param to
+     *            the end time in millis.
+     * @param limit
+     *            the maximum number of messages.
+     * @return the number of replayed messages.
+     */
+    public int replay(long from, long to, int limit) {
+        TriggerJournal j = getJournal();
+        if (j == null) {
+            return 0;
+        }
+        // Token is not stored in journal, so replay only messages which passed token check.
+        Set<Long> accepted = new HashSet<Long>();
+        for (TriggerJournal.Entry e : j.query(null, Outcome.ACCEPTED, from, to + REPLAY_OUTCOME_MARGIN_MILLIS,
+                Integer.MAX_VALUE)) {
+            accepted.add(e.getSeq());
+        }
+        int replayed = 0;
+        for (TriggerJournal.Entry e : j.query(null, Outcome.RECEIVED, from, to, limit)) {
+            if (e.getBody() == null) {
+                // body was not stored because it exceeded record size limit.
+                continue;
+            }
+            if (!accepted.contains(e.getSeq())) {
+                continue;
+            }
+            if (e.getDetail() != null && e.getDetail().startsWith(DETAIL_REPLAY)) {
+                // replay of replay would duplicate builds on overlapping ranges.
+                continue;
+            }
+            receive(e.getQueueName(), e.getContentType(), e.getHeaders(), e.getBody(), e.getSeq());
+            replayed++;
+        }
+        return replayed;
+    }
+
     @Override
     public void onBind(String queueName) {
         LOGGER.info("Bind to: " + queueName);
@@ -81,40 +241,224 @@ public class RemoteBuildListener extends MessageQueueListener {
         LOGGER.info("Unbind from: " + queueName);
     }
 
+    /**
+     * Gets dead-letter router.
+     *
+     * @return the router.
+     */
+    public DeadLetterRouter getDeadLetterRouter() {
+        return deadLetterRouter;
+    }
+
     /**
      * Finds matched projects using given project name and token then schedule
      * build.
      */
     @Override
     public void onReceive(String queueName, String contentType, Map<String, Object> headers, byte[] body) {
-        if (CONTENT_TYPE_JSON.equals(contentType)) {
-            try {
-                String msg = new String(body, "UTF-8");
+        receive(queueName, contentType, headers, body, -1);
+    }
+
+    /**
+     * Handles message. Token is not stored in journal, so token check is
+     * skipped for replayed message. Only messages which passed it are replayed.
+     *
+     * @param replayOf
+     *            the sequence number of replayed message, or -1 for received one.
+     */
+    private void receive(String queueName, String contentType, Map<String, Object> headers, byte[] body,
+            long replayOf) {
+        TriggerJournal j = getJournal();
+        boolean replay = replayOf >= 0;
+        String origin = replay ? DETAIL_REPLAY + replayOf : null;
+
+        if (!CONTENT_TYPE_JSON.equals(contentType)) {
+            invalid(j, origin, Reason.INVALID_CONTENT_TYPE, "Unsupported content type: " + contentType,
+                    queueName, contentType, headers, body);
+            return;
+        }
+
+        JSON parsed;
+        try {
+            parsed = JSONSerializer.toJSON(new String(body, "UTF-8"));
+        } catch (JSONException e) {
+            invalid(j, origin, Reason.INVALID_FORMAT, e.getMessage(), queueName, contentType, headers, body);
+            return;
+        } catch (UnsupportedEncodingException e) {
+            invalid(j, origin, Reason.INVALID_FORMAT, "Unsupported encoding", queueName, contentType, headers, body);
+            return;
+        }
+        if (!(parsed instanceof JSONObject)) {
+            invalid(j, origin, Reason.INVALID_FORMAT, DETAIL_NOT_OBJECT, queueName, contentType, headers, body);
+            return;
+        }
+        JSONObject json = (JSONObject) parsed;
+
+        String token = json.optString(KEY_TOKEN, null);
+        json.remove(KEY_TOKEN);
+        // Dead-letter also gets message without token.
+        byte[] stored = json.toString().getBytes(UTF_8);
+        long seq = received(j, queueName, contentType, headers, stored, origin);
+
+        try {
+            String project = json.getString(KEY_PROJECT);
+            int quietPeriod = clamp(getOption(json, headers, KEY_QUIET_PERIOD), MAX_QUIET_PERIOD, KEY_QUIET_PERIOD);
+            int delay = clamp(getOption(json, headers, KEY_DELAY), MAX_DELAY, KEY_DELAY);
+            int priority = getOption(json, headers, KEY_PRIORITY);
+            boolean matched = false;
+            for (RemoteBuildTrigger t : triggers) {
+
+                if (!t.getProjectName().equals(project)) {
+                    continue;
+                }
+                matched = true;
+
+                if (t.getRemoteBuildToken() == null) {
+                    journal(j, seq, Outcome.REJECTED, project, DETAIL_NO_TOKEN, -1);
+                    deadLetter(replay, Reason.NO_TOKEN, project, queueName, contentType, headers, stored);
+                    continue;
+                }
+
+                if (!replay && !t.getRemoteBuildToken().equals(token)) {
+                    journal(j, seq, Outcome.REJECTED, project, DETAIL_TOKEN_MISMATCH, -1);
+                    deadLetter(replay, Reason.TOKEN_MISMATCH, project, queueName, contentType, headers, stored);
+                    continue;
+                }
+                journal(j, seq, Outcome.ACCEPTED, project, null, -1);
+
+                if (!t.isAccepted(json, headers)) {
+                    String error = t.getFilterError();
+                    journal(j, seq, Outcome.FILTERED, project,
+                            error != null ? DETAIL_INVALID_FILTER + error : t.getFilter(), -1);
+                    continue;
+                }
+
+                JSONArray parameters = json.containsKey(KEY_PARAMETER) ? json.getJSONArray(KEY_PARAMETER) : null;
+                dispatch(j, seq, replay, t, queueName, parameters, quietPeriod, delay, priority,
+                        contentType, headers, stored);
+            }
+            if (!matched) {
+                journal(j, seq, Outcome.UNMATCHED, project, null, -1);
+                deadLetter(replay, Reason.UNMATCHED, project, queueName, contentType, headers, stored);
+            }
+        } catch (JSONException e) {
+            journal(j, seq, Outcome.INVALID, null, e.getMessage(), -1);
+            deadLetter(replay, Reason.INVALID_FORMAT, e.getMessage(), queueName, contentType, headers, stored);
+        }
+    }
+
+    /**
+     * Records message which could not be parsed as invalid and rejects it.
+     */
+    private void invalid(TriggerJournal j, String origin, Reason reason, String detail, String queueName,
+            String contentType, Map<String, Object> headers, byte[] body) {
+        byte[] masked = maskToken(body);
+        long seq = received(j, queueName, contentType, headers, masked, origin);
+        journal(j, seq, Outcome.INVALID, null, detail, -1);
+        deadLetter(origin != null, reason, detail, queueName, contentType, headers, masked);
+    }
+
+    /**
+     * Passes message to dead-letter router unless it is replayed. Replayed
+     * message was already dead-lettered when it was received.
+     */
+    private void deadLetter(boolean replay, Reason reason, String detail, String queueName, String contentType,
+            Map<String, Object> headers, byte[] body) {
+        if (!replay) {
+            deadLetterRouter.reject(reason, detail, queueName, contentType, headers, body);
+        }
+    }
+
+    /**
+     * Masks token in body which could not be parsed, so that it is not stored in journal.
+     */
+    private static byte[] maskToken(byte[] body) {
+        if (body == null) {
+            return null;
+        }
+        String s = new String(body, UTF_8);
+        Matcher m = TOKEN_PATTERN.matcher(s);
+        if (!m.find()) {
+            return body;
+        }
+        return m.replaceAll("$1\"****\"").getBytes(UTF_8);
+    }
+
+    /**
+     * Records received message into journal if it is enabled.
+     */
+    private static long received(TriggerJournal j, String queueName, String contentType,
+            Map<String, Object> headers, byte[] body, String origin) {
+        return j != null ? j.received(queueName, contentType, headers, body, origin) : -1;
+    }
+
+    /**
+     * Passes build request to dispatch stage.
+     */
+    private void dispatch(final TriggerJournal j, final long seq, final boolean replay, final RemoteBuildTrigger t,
+            final String queueName, final JSONArray parameters, final int quietPeriod, int delay, final int priority,
+            final String contentType, final Map<String, Object> headers, final byte[] body) {
+        dispatcher.dispatch(new BuildDispatcher.Request(priority) {
+            public void run() {
+                Queue.Item item;
                 try {
-                    JSONObject json = (JSONObject) JSONSerializer.toJSON(msg);
-                    for (RemoteBuildTrigger t : triggers) {
-
-                        if (t.getRemoteBuildToken() == null) {
-                            LOGGER.log(Level.WARNING, "ignoring AMQP trigger for project {0}: no token set", t.getProjectName());
-                            continue;
-                        }
-
-                        if (t.getProjectName().equals(json.getString(KEY_PROJECT))
-                                && t.getRemoteBuildToken().equals(json.getString(KEY_TOKEN))) {
-                            if (json.containsKey(KEY_PARAMETER)) {
-                                t.scheduleBuild(queueName, json.getJSONArray(KEY_PARAMETER));
-                            } else {
-                                t.scheduleBuild(queueName, null);
-                            }
-                        }
-                    }
+                    item = t.scheduleBuild(queueName, parameters, quietPeriod, priority);
                 } catch (JSONException e) {
-                    LOGGER.warning("JSON format string: " + msg);
-                    LOGGER.warning(e.getMessage());
+                    // e.g. parameter without name.
+                    journal(j, seq, Outcome.INVALID, t.getProjectName(), e.getMessage(), -1);
+                    deadLetter(replay, Reason.INVALID_FORMAT, e.getMessage(), queueName, contentType, headers, body);
+                    return;
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.FINE, "Failed to schedule build for " + t.getProjectName(), e);
+                    journal(j, seq, Outcome.REJECTED, t.getProjectName(), "Failed to schedule: " + e, -1);
+                    deadLetter(replay, Reason.NOT_BUILDABLE, String.valueOf(e), queueName, contentType, headers, body);
+                    return;
+                }
+                if (item != null) {
+                    journal(j, seq, Outcome.SCHEDULED, t.getProjectName(), null, item.getId());
+                } else {
+                    journal(j, seq, Outcome.REJECTED, t.getProjectName(), "Not buildable", -1);
+                    deadLetter(replay, Reason.NOT_BUILDABLE, t.getProjectName(), queueName, contentType, headers, body);
                 }
-            } catch (UnsupportedEncodingException e) {
-                LOGGER.warning("Unsupported encoding. Is message body is not string?");
             }
+        }, delay);
+    }
+
+    /**
+     * Gets integer option from message body, or from headers if body does not have it.
+     *
+     * @return the option value, or 0 if it is not given or invalid.
+     */
+    private static int getOption(JSONObject json, Map<String, Object> headers, String key) {
+        Object value = json.containsKey(key) ? json.get(key) : (headers != null ? headers.get(key) : null);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.FINE, "Ignoring invalid {0}: {1}", new Object[] {key, value});
+            return 0;
+        }
+    }
+
+    /**
+     * Clamps option value in seconds between 0 and the given maximum.
+     */
+    private static int clamp(int value, int max, String key) {
+        if (value > max) {
+            LOGGER.log(Level.FINE, "Clamping {0} {1} to {2}", new Object[] {key, value, max});
+            return max;
+        }
+        return Math.max(0, value);
+    }
+
+    /**
+     * Records outcome into journal if it is enabled.
+     */
+    private static void journal(TriggerJournal j, long seq, Outcome outcome, String project, String detail, long queueItemId) {
+        if (j != null) {
+            j.record(seq, outcome, project, detail, queueItemId);
         }
     }
 }
@@ -0,0 +1,55 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.util.List;
+
+import hudson.model.Action;
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import hudson.model.queue.FoldableAction;
+
+/**
+ * Action to keep priority requested by application message.
+ *
+ * If a build is merged into a waiting item, the higher priority is kept.
+ */
+public class RemoteBuildPriorityAction extends InvisibleAction implements FoldableAction {
+
+    private final int priority;
+
+    /**
+     * Creates instance with specified parameter.
+     *
+     * @param priority
+     *            the priority. Higher is more urgent.
+     */
+    public RemoteBuildPriorityAction(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Gets priority.
+     *
+     * @return the priority.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Gets priority of queue item.
+     *
+     * @param item
+     *            the queue item.
+     * @return the priority, or 0 if item has no priority.
+     */
+    public static int getPriority(Queue.Item item) {
+        RemoteBuildPriorityAction action = item.getAction(RemoteBuildPriorityAction.class);
+        return action != null ? action.getPriority() : 0;
+    }
+
+    public void foldIntoExisting(Queue.Item item, Queue.Task owner, List<Action> otherActions) {
+        if (priority > getPriority(item)) {
+            item.replaceAction(this);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import hudson.Extension;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.QueueSorter;
+
+/**
+ * Sorts buildable items by priority requested by application message.
+ *
+ * Jenkins uses only one sorter, so this is installed only if no other
+ * sorter (e.g. Priority Sorter Plugin) is available. Items without priority
+ * are treated as 0 and keep their original order.
+ */
+@Extension(ordinal = -100)
+public class RemoteBuildQueueSorter extends QueueSorter {
+
+    private static final Comparator<BuildableItem> BY_PRIORITY = new Comparator<BuildableItem>() {
+        public int compare(BuildableItem o1, BuildableItem o2) {
+            int p1 = RemoteBuildPriorityAction.getPriority(o1);
+            int p2 = RemoteBuildPriorityAction.getPriority(o2);
+            return p1 < p2 ? 1 : (p1 == p2 ? 0 : -1);
+        }
+    };
+
+    @Override
+    public void sortBuildableItems(List<BuildableItem> buildables) {
+        for (BuildableItem item : buildables) {
+            if (RemoteBuildPriorityAction.getPriority(item) != 0) {
+                // stable sort, so FIFO order is kept in the same priority.
+                Collections.sort(buildables, BY_PRIORITY);
+                return;
+            }
+        }
+    }
+}
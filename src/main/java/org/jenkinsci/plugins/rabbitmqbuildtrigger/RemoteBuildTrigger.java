@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.rabbitmqbuildtrigger;
 
 import hudson.Extension;
+import hudson.model.Action;
 import hudson.model.Item;
 import hudson.model.ParameterValue;
 import hudson.model.CauseAction;
@@ -9,11 +10,14 @@ import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Project;
 import hudson.model.Job;
+import hudson.model.Queue;
 import hudson.model.StringParameterValue;
 import hudson.model.listeners.ItemListener;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
+import hudson.util.FormValidation;
 
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -31,6 +35,8 @@ import org.apache.commons.lang3.StringUtils;
 import org.jenkinsci.Symbol;
 import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
 /**
  * The extension trigger builds by application message.
@@ -49,6 +55,8 @@ public class RemoteBuildTrigger<T extends Job<?, ?> & ParameterizedJobMixIn.Para
     private static final Logger LOGGER = Logger.getLogger(RemoteBuildTrigger.class.getName());
 
     private String remoteBuildToken;
+    private String filter;
+    private transient volatile MessageFilter compiledFilter;
 
     /**
      * Creates instance with specified parameters.
@@ -64,6 +72,7 @@ public class RemoteBuildTrigger<T extends Job<?, ?> & ParameterizedJobMixIn.Para
 
     @Override
     public void start(T project, boolean newInstance) {
+        compiledFilter = compileFilter(filter);
         RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
 
         if (listener != null) {
@@ -112,6 +121,80 @@ public class RemoteBuildTrigger<T extends Job<?, ?> & ParameterizedJobMixIn.Para
         this.remoteBuildToken = remoteBuildToken;
     }
 
+    /**
+     * Gets filter expression.
+     *
+     * @return the filter expression, or null.
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets filter expression. It is compiled here.
+     *
+     * @param filter the filter expression.
+     */
+    @DataBoundSetter
+    public void setFilter(String filter) {
+        this.filter = StringUtils.stripToNull(filter);
+        this.compiledFilter = compileFilter(this.filter);
+    }
+
+    /**
+     * Evaluates filter for application message.
+     *
+     * @param json
+     *            the message body.
+     * @param headers
+     *            the message headers.
+     * @return true if no filter is set or message matches filter.
+     */
+    public boolean isAccepted(JSONObject json, Map<String, Object> headers) {
+        MessageFilter f = getCompiledFilter();
+        return f == null || f.matches(json, headers);
+    }
+
+    /**
+     * Gets the reason why filter expression is invalid.
+     *
+     * @return the error message, or null if filter is not set or valid.
+     */
+    public String getFilterError() {
+        MessageFilter f = getCompiledFilter();
+        return f instanceof MessageFilter.Invalid ? ((MessageFilter.Invalid) f).getError() : null;
+    }
+
+    /**
+     * Gets compiled filter. It is compiled here if not yet.
+     */
+    private MessageFilter getCompiledFilter() {
+        if (filter == null) {
+            return null;
+        }
+        MessageFilter f = compiledFilter;
+        if (f == null) {
+            f = compileFilter(filter);
+            compiledFilter = f;
+        }
+        return f;
+    }
+
+    /**
+     * Compiles filter expression. Invalid expression never matches.
+     */
+    private static MessageFilter compileFilter(String filter) {
+        if (filter == null) {
+            return null;
+        }
+        try {
+            return MessageFilter.compile(filter);
+        } catch (ParseException e) {
+            LOGGER.warning("Invalid filter: " + e.getMessage());
+            return new MessageFilter.Invalid(e.getMessage());
+        }
+    }
+
     /**
      * Gets project name.
      *
@@ -131,14 +214,36 @@ public class RemoteBuildTrigger<T extends Job<?, ?> & ParameterizedJobMixIn.Para
      *            the queue name.
      * @param jsonArray
      *            the content of application message.
+     * @return the queue item, or null if the build could not be scheduled.
      */
-    public void scheduleBuild(String queueName, JSONArray jsonArray) {
+    public Queue.Item scheduleBuild(String queueName, JSONArray jsonArray) {
+        return scheduleBuild(queueName, jsonArray, 0, 0);
+    }
+
+    /**
+     * Schedules build for triggered job using application message.
+     *
+     * @param queueName
+     *            the queue name.
+     * @param jsonArray
+     *            the content of application message.
+     * @param quietPeriod
+     *            the quiet period in seconds.
+     * @param priority
+     *            the priority. Higher is more urgent. 0 is normal.
+     * @return the queue item, or null if the build could not be scheduled.
+     */
+    public Queue.Item scheduleBuild(String queueName, JSONArray jsonArray, int quietPeriod, int priority) {
+        List<Action> actions = new ArrayList<Action>();
+        actions.add(new CauseAction(new RemoteBuildCause(queueName)));
         if (jsonArray != null) {
             List<ParameterValue> parameters = getUpdatedParameters(jsonArray, getDefinitionParameters(job));
-            ParameterizedJobMixIn.scheduleBuild2(job, 0, new CauseAction(new RemoteBuildCause(queueName)), new ParametersAction(parameters));
-        } else {
-            ParameterizedJobMixIn.scheduleBuild2(job, 0, new CauseAction(new RemoteBuildCause(queueName)));
+            actions.add(new ParametersAction(parameters));
+        }
+        if (priority != 0) {
+            actions.add(new RemoteBuildPriorityAction(priority));
         }
+        return ParameterizedJobMixIn.scheduleBuild2(job, quietPeriod, actions.toArray(new Action[actions.size()]));
     }
 
     /**
@@ -212,6 +317,25 @@ public class RemoteBuildTrigger<T extends Job<?, ?> & ParameterizedJobMixIn.Para
             return PLUGIN_NAME;
         }
 
+        /**
+         * Checks filter expression.
+         *
+         * @param value
+         *            the filter expression.
+         * @return the validation result.
+         */
+        public FormValidation doCheckFilter(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.ok();
+            }
+            try {
+                MessageFilter.compile(value);
+                return FormValidation.ok();
+            } catch (ParseException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         /**
          * ItemListener implementation class.
          *
@@ -0,0 +1,641 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Append-only binary journal of received messages and their outcomes.
+ *
+ * Records are written into rolling segment files. A small in-memory index
+ * (projects and time checkpoints per segment) is rebuilt from the segments
+ * at startup and used to answer queries without scanning everything.
+ * Records are buffered, so the owner should call {@link #flush()}
+ * periodically and {@link #close()} on shutdown.
+ */
+public class TriggerJournal {
+
+    /**
+     * Outcome of a journal entry.
+     */
+    public enum Outcome {
+        /** Message arrived. Entry carries the message itself. */
+        RECEIVED,
+        /** Message could not be parsed. */
+        INVALID,
+        /** Message did not match any project. */
+        UNMATCHED,
+        /** Message matched a project but was rejected. */
+        REJECTED,
+        /** Build was scheduled for a project. */
+        SCHEDULED,
+        /** Message was filtered out by trigger filter. */
+        FILTERED,
+        /** Message passed token check of a project. Only these are replayed. */
+        ACCEPTED
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(TriggerJournal.class.getName());
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String SEGMENT_FORMAT = "%010d" + SEGMENT_SUFFIX;
+    private static final int CHECKPOINT_INTERVAL = 256;
+    /** Interval of periodic flush. Records are also flushed on append after this interval. */
+    static final long FLUSH_INTERVAL_MILLIS = 1000;
+    /** Maximum size of a record. Larger message is stored without body and headers. */
+    static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final File dir;
+    private final long segmentSize;
+    private final int maxSegments;
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(512);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+
+    private DataOutputStream out;
+    private int nextSegmentNumber;
+    private long nextSeq = 1;
+    private long lastFlush;
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param dir
+     *            the directory for segment files.
+     * @param segmentSize
+     *            the size in bytes at which a segment is rolled.
+     * @param maxSegments
+     *            the number of segments to keep.
+     */
+    public TriggerJournal(File dir, long segmentSize, int maxSegments) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        load();
+    }
+
+    /**
+     * Records a received message.
+     *
+     * @param queueName
+     *            the queue name.
+     * @param contentType
+     *            the content type.
+     * @param headers
+     *            the message headers.
+     * @param body
+     *            the message body.
+     * @return the sequence number assigned to the message.
+     */
+    public long received(String queueName, String contentType, Map<String, Object> headers, byte[] body) {
+        return received(queueName, contentType, headers, body, null);
+    }
+
+    /**
+     * Records a received message with detail.
+     *
+     * @param queueName
+     *            the queue name.
+     * @param contentType
+     *            the content type.
+     * @param headers
+     *            the message headers.
+     * @param body
+     *            the message body.
+     * @param detail
+     *            the detail such as origin of replayed message, or null.
+     * @return the sequence number assigned to the message.
+     */
+    public synchronized long received(String queueName, String contentType, Map<String, Object> headers, byte[] body,
+            String detail) {
+        long seq = nextSeq++;
+        Entry e = new Entry(seq, System.currentTimeMillis(), Outcome.RECEIVED, null, detail, -1);
+        e.queueName = queueName;
+        e.contentType = contentType;
+        if (headers != null) {
+            e.headers = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, Object> h : headers.entrySet()) {
+                e.headers.put(h.getKey(), String.valueOf(h.getValue()));
+            }
+        }
+        e.body = body;
+        append(e);
+        return seq;
+    }
+
+    /**
+     * Records an outcome for a received message.
+     *
+     * @param seq
+     *            the sequence number returned by {@link #received}.
+     * @param outcome
+     *            the outcome.
+     * @param project
+     *            the project name, or null.
+     * @param detail
+     *            the reason or other detail, or null.
+     * @param queueItemId
+     *            the queue item id, or -1.
+     */
+    public synchronized void record(long seq, Outcome outcome, String project, String detail, long queueItemId) {
+        append(new Entry(seq, System.currentTimeMillis(), outcome, project, detail, queueItemId));
+    }
+
+    /**
+     * Queries entries in the given time range.
+     *
+     * @param project
+     *            the project name, or null for any.
+     * @param outcome
+     *            the outcome, or null for any.
+     * @param from
+     *            the start time in millis (inclusive).
+     * @param to
+     *            the end time in millis (inclusive).
+     * @param limit
+     *            the maximum number of entries.
+     * @return the list of entries in order of time.
+     */
+    public List<Entry> query(String project, Outcome outcome, long from, long to, int limit) {
+        List<Segment> candidates = new ArrayList<Segment>();
+        List<Long> sizes = new ArrayList<Long>();
+        List<Long> offsets = new ArrayList<Long>();
+        synchronized (this) {
+            flush();
+            for (Segment s : segments) {
+                if (s.records == 0 || s.lastTime < from || s.firstTime > to) {
+                    continue;
+                }
+                if (project != null && !s.projects.contains(project)) {
+                    continue;
+                }
+                candidates.add(s);
+                sizes.add(s.size);
+                offsets.add(s.offsetFor(from));
+            }
+        }
+
+        List<Entry> result = new ArrayList<Entry>();
+        for (int i = 0; i < candidates.size() && result.size() < limit; i++) {
+            Segment s = candidates.get(i);
+            long offset = offsets.get(i);
+            DataInputStream in = null;
+            try {
+                in = open(s.file, offset);
+                while (offset < sizes.get(i) && result.size() < limit) {
+                    int len = in.readInt();
+                    Entry e = read(in);
+                    offset += 4 + len;
+                    if (e.time > to) {
+                        break;
+                    }
+                    if (e.time < from
+                            || (project != null && !project.equals(e.project))
+                            || (outcome != null && outcome != e.outcome)) {
+                        continue;
+                    }
+                    result.add(e);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Journal segment unreadable: " + s.file, e);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Flushes buffered records to disk.
+     */
+    public synchronized void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to flush trigger journal.", e);
+            }
+        }
+        lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Closes current segment.
+     */
+    public synchronized void close() {
+        flush();
+        closeQuietly(out);
+        out = null;
+    }
+
+    private void append(Entry e) {
+        try {
+            if (e.body != null && e.body.length > MAX_RECORD_SIZE) {
+                e = e.withoutMessage(e.body.length);
+            }
+            recordBuffer.reset();
+            write(recordOut, e);
+            recordOut.flush();
+            if (recordBuffer.size() > MAX_RECORD_SIZE) {
+                e = e.withoutMessage(recordBuffer.size());
+                recordBuffer.reset();
+                write(recordOut, e);
+                recordOut.flush();
+            }
+            int len = recordBuffer.size();
+
+            Segment s = current();
+            if (s.size > 0 && s.size + 4 + len > segmentSize) {
+                close();
+                s = current();
+            }
+            if (s.records % CHECKPOINT_INTERVAL == 0) {
+                s.checkpoints.add(new long[] {e.time, s.size});
+            }
+            out.writeInt(len);
+            recordBuffer.writeTo(out);
+            s.add(e, 4 + len);
+
+            if (e.time - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+                flush();
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to write trigger journal.", ex);
+            closeQuietly(out);
+            out = null;
+        }
+    }
+
+    private Segment current() throws IOException {
+        if (out == null) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create journal directory: " + dir);
+            }
+            Segment s = new Segment(new File(dir, String.format(SEGMENT_FORMAT, nextSegmentNumber++)));
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(s.file), 64 * 1024));
+            segments.add(s);
+            while (segments.size() > maxSegments) {
+                Segment old = segments.removeFirst();
+                if (!old.file.delete()) {
+                    LOGGER.log(Level.FINE, "Cannot delete journal segment: {0}", old.file);
+                }
+            }
+        }
+        return segments.getLast();
+    }
+
+    private void load() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            Segment s = new Segment(f);
+            DataInputStream in = null;
+            try {
+                nextSegmentNumber = Math.max(nextSegmentNumber,
+                        Integer.parseInt(StringUtils.removeEnd(f.getName(), SEGMENT_SUFFIX)) + 1);
+                in = open(f, 0);
+                long length = f.length();
+                while (s.size + 4 <= length) {
+                    int len = in.readInt();
+                    if (len < 0 || len > MAX_RECORD_SIZE || s.size + 4 + len > length) {
+                        break;
+                    }
+                    Entry e = read(in);
+                    if (s.records % CHECKPOINT_INTERVAL == 0) {
+                        s.checkpoints.add(new long[] {e.time, s.size});
+                    }
+                    s.add(e, 4 + len);
+                    nextSeq = Math.max(nextSeq, e.seq + 1);
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            } catch (EOFException e) {
+                LOGGER.log(Level.FINE, "Truncated journal segment: {0}", f);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read journal segment: " + f, e);
+            } finally {
+                closeQuietly(in);
+            }
+            segments.add(s);
+        }
+        while (segments.size() > maxSegments) {
+            segments.removeFirst().file.delete();
+        }
+    }
+
+    private static DataInputStream open(File f, long offset) throws IOException {
+        FileInputStream fis = new FileInputStream(f);
+        long skipped = 0;
+        while (skipped < offset) {
+            long n = fis.skip(offset - skipped);
+            if (n <= 0) {
+                fis.close();
+                throw new EOFException();
+            }
+            skipped += n;
+        }
+        return new DataInputStream(new BufferedInputStream(fis, 64 * 1024));
+    }
+
+    private static void write(DataOutputStream out, Entry e) throws IOException {
+        out.writeByte(e.outcome.ordinal());
+        out.writeLong(e.seq);
+        out.writeLong(e.time);
+        out.writeLong(e.queueItemId);
+        writeString(out, e.project);
+        writeString(out, e.detail);
+        writeString(out, e.queueName);
+        writeString(out, e.contentType);
+        if (e.headers == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(e.headers.size());
+            for (Map.Entry<String, String> h : e.headers.entrySet()) {
+                writeString(out, h.getKey());
+                writeString(out, h.getValue());
+            }
+        }
+        if (e.body == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(e.body.length);
+            out.write(e.body);
+        }
+    }
+
+    private static Entry read(DataInputStream in) throws IOException {
+        int code = in.readUnsignedByte();
+        if (code >= Outcome.values().length) {
+            throw new IOException("Unknown outcome in journal: " + code);
+        }
+        Outcome outcome = Outcome.values()[code];
+        long seq = in.readLong();
+        long time = in.readLong();
+        long queueItemId = in.readLong();
+        Entry e = new Entry(seq, time, outcome, readString(in), readString(in), queueItemId);
+        e.queueName = readString(in);
+        e.contentType = readString(in);
+        int headerCount = in.readInt();
+        if (headerCount >= 0) {
+            e.headers = new LinkedHashMap<String, String>();
+            for (int i = 0; i < headerCount; i++) {
+                e.headers.put(readString(in), readString(in));
+            }
+        }
+        int bodyLength = in.readInt();
+        if (bodyLength >= 0) {
+            e.body = new byte[bodyLength];
+            in.readFully(e.body);
+        }
+        return e;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeUTF(StringUtils.left(s, 8192));
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close journal stream.", e);
+            }
+        }
+    }
+
+    /**
+     * Index of a segment file.
+     */
+    private static final class Segment {
+        private final File file;
+        private final Set<String> projects = new HashSet<String>();
+        private final List<long[]> checkpoints = new ArrayList<long[]>();
+        private long firstTime = Long.MAX_VALUE;
+        private long lastTime = Long.MIN_VALUE;
+        private long size;
+        private int records;
+
+        private Segment(File file) {
+            this.file = file;
+        }
+
+        private void add(Entry e, int length) {
+            firstTime = Math.min(firstTime, e.time);
+            lastTime = Math.max(lastTime, e.time);
+            if (e.project != null) {
+                projects.add(e.project);
+            }
+            size += length;
+            records++;
+        }
+
+        private long offsetFor(long time) {
+            long offset = 0;
+            for (long[] cp : checkpoints) {
+                if (cp[0] > time) {
+                    break;
+                }
+                offset = cp[1];
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * An entry in the journal.
+     */
+    public static final class Entry {
+        private final long seq;
+        private final long time;
+        private final Outcome outcome;
+        private final String project;
+        private final String detail;
+        private final long queueItemId;
+        private String queueName;
+        private String contentType;
+        private Map<String, String> headers;
+        private byte[] body;
+
+        private Entry(long seq, long time, Outcome outcome, String project, String detail, long queueItemId) {
+            this.seq = seq;
+            this.time = time;
+            this.outcome = outcome;
+            this.project = project;
+            this.detail = detail;
+            this.queueItemId = queueItemId;
+        }
+
+        /**
+         * Creates marker entry of too large message. Body and headers are dropped
+         * so that the record is readable under {@link #MAX_RECORD_SIZE}.
+         */
+        private Entry withoutMessage(int size) {
+            Entry marker = new Entry(seq, time, outcome, project,
+                    "Message too large for journal: " + size + " bytes", queueItemId);
+            marker.queueName = queueName;
+            marker.contentType = contentType;
+            return marker;
+        }
+
+        /**
+         * Gets sequence number of the message.
+         *
+         * @return the sequence number.
+         */
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * Gets time of this entry.
+         *
+         * @return the time in millis.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Gets outcome.
+         *
+         * @return the outcome.
+         */
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * Gets project name.
+         *
+         * @return the project name, or null.
+         */
+        public String getProject() {
+            return project;
+        }
+
+        /**
+         * Gets detail.
+         *
+         * @return the detail, or null.
+         */
+        public String getDetail() {
+            return detail;
+        }
+
+        /**
+         * Gets queue item id.
+         *
+         * @return the queue item id, or -1.
+         */
+        public long getQueueItemId() {
+            return queueItemId;
+        }
+
+        /**
+         * Gets queue name. Only set on {@link Outcome#RECEIVED}.
+         *
+         * @return the queue name.
+         */
+        public String getQueueName() {
+            return queueName;
+        }
+
+        /**
+         * Gets content type. Only set on {@link Outcome#RECEIVED}.
+         *
+         * @return the content type.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Gets headers. Only set on {@link Outcome#RECEIVED}.
+         *
+         * @return the headers, or null.
+         */
+        public Map<String, Object> getHeaders() {
+            if (headers == null) {
+                return null;
+            }
+            return Collections.<String, Object>unmodifiableMap(headers);
+        }
+
+        /**
+         * Gets body. Only set on {@link Outcome#RECEIVED}, and null if the
+         * message exceeded record size limit.
+         *
+         * @return the body, or null.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Converts to JSON. Message body is not included because it may
+         * contain token.
+         *
+         * @return the JSON object.
+         */
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("seq", seq);
+            json.put("time", time);
+            json.put("outcome", outcome.name());
+            if (project != null) {
+                json.put("project", project);
+            }
+            if (detail != null) {
+                json.put("detail", detail);
+            }
+            if (queueItemId >= 0) {
+                json.put("queueItemId", queueItemId);
+            }
+            if (queueName != null) {
+                json.put("queueName", queueName);
+            }
+            return json;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jenkinsci.plugins.rabbitmqbuildtrigger.TriggerJournal.Outcome;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * The action exposes trigger journal as JSON API.
+ *
+ * <pre>
+ * GET  /rabbitmq-trigger-journal/query?project=NAME&amp;outcome=SCHEDULED&amp;from=MILLIS&amp;to=MILLIS&amp;limit=N
+ * POST /rabbitmq-trigger-journal/replay?from=MILLIS&amp;to=MILLIS&amp;limit=N
+ * GET  /rabbitmq-trigger-journal/deadLetters
+ * </pre>
+ */
+@Extension
+public class TriggerJournalAction implements RootAction {
+
+    private static final String URL_NAME = "rabbitmq-trigger-journal";
+    private static final int DEFAULT_LIMIT = 1000;
+    private static final int MAX_LIMIT = 10000;
+    private static final long DEFAULT_RANGE_MILLIS = 60 * 60 * 1000L;
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.TriggerJournal();
+    }
+
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    /**
+     * Queries journal entries.
+     *
+     * @param project
+     *            the project name. Any if empty.
+     * @param outcome
+     *            the outcome name. Any if empty.
+     * @param from
+     *            the start time in millis. Defaults to one hour ago.
+     * @param to
+     *            the end time in millis. Defaults to now.
+     * @param limit
+     *            the maximum number of entries.
+     * @param rsp
+     *            the response. 400 if a parameter is invalid.
+     * @throws IOException
+     *             if writing response fails.
+     */
+    public void doQuery(@QueryParameter String project, @QueryParameter String outcome,
+            @QueryParameter String from, @QueryParameter String to, @QueryParameter String limit,
+            StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+        long now = System.currentTimeMillis();
+        Outcome o;
+        long fromMillis;
+        long toMillis;
+        int max;
+        try {
+            o = toOutcome(outcome);
+            fromMillis = toLong("from", from, now - DEFAULT_RANGE_MILLIS);
+            toMillis = toLong("to", to, now);
+            max = toLimit(limit);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        JSONArray entries = new JSONArray();
+        TriggerJournal journal = getListener().getJournal();
+        if (journal != null) {
+            for (TriggerJournal.Entry e : journal.query(StringUtils.stripToNull(project), o,
+                    fromMillis, toMillis, max)) {
+                entries.add(e.toJSON());
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put("entries", entries);
+        writeJSON(rsp, json);
+    }
+
+    /**
+     * Replays received messages in time range.
+     *
+     * @param from
+     *            the start time in millis.
+     * @param to
+     *            the end time in millis. Defaults to now.
+     * @param limit
+     *            the maximum number of messages.
+     * @param rsp
+     *            the response. 400 if a parameter is invalid.
+     * @throws IOException
+     *             if writing response fails.
+     */
+    @RequirePOST
+    public void doReplay(@QueryParameter(required = true) String from, @QueryParameter String to,
+            @QueryParameter String limit, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+        long fromMillis;
+        long toMillis;
+        int max;
+        try {
+            fromMillis = toLong("from", from, 0);
+            toMillis = toLong("to", to, System.currentTimeMillis());
+            max = toLimit(limit);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        int replayed = getListener().replay(fromMillis, toMillis, max);
+        JSONObject json = new JSONObject();
+        json.put("replayed", replayed);
+        writeJSON(rsp, json);
+    }
+
+    /**
+     * Gets counts of dead-lettered messages by reason.
+     *
+     * @param rsp
+     *            the response.
+     * @throws IOException
+     *             if writing response fails.
+     */
+    public void doDeadLetters(StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+        JSONObject json = new JSONObject();
+        json.put("counts", getListener().getDeadLetterRouter().getCounts());
+        writeJSON(rsp, json);
+    }
+
+    private static RemoteBuildListener getListener() {
+        return MessageQueueListener.all().get(RemoteBuildListener.class);
+    }
+
+    private static Outcome toOutcome(String value) {
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        try {
+            return Outcome.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown outcome: " + value
+                    + ". Expected one of " + StringUtils.join(Outcome.values(), ", "));
+        }
+    }
+
+    private static long toLong(String name, String value, long defaultValue) {
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static int toLimit(String value) {
+        return (int) Math.min(MAX_LIMIT, Math.max(1, toLong("limit", value, DEFAULT_LIMIT)));
+    }
+
+    private static void writeJSON(StaplerResponse rsp, JSONObject json) throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(json.toString());
+    }
+}
@@ -0,0 +1,115 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BuildDispatcherTest {
+
+    private final BuildDispatcher dispatcher = new BuildDispatcher(16);
+    private final List<String> dispatched = new CopyOnWriteArrayList<String>();
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    private BuildDispatcher.Request request(final String name, int priority) {
+        return new BuildDispatcher.Request(priority) {
+            public void run() {
+                dispatched.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.dispatch(new BuildDispatcher.Request(0) {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                dispatched.add("blocker");
+            }
+        }, 0);
+        assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+
+        dispatcher.dispatch(request("low-1", 0), 0);
+        dispatcher.dispatch(request("high-1", 5), 0);
+        dispatcher.dispatch(request("low-2", 0), 0);
+        dispatcher.dispatch(request("high-2", 5), 0);
+        assertThat(dispatched.isEmpty(), is(true));
+
+        release.countDown();
+        assertThat(dispatcher.awaitIdle(10, TimeUnit.SECONDS), is(true));
+        assertThat(dispatched.toString(), is("[blocker, high-1, high-2, low-1, low-2]"));
+    }
+
+    @Test
+    public void testDelayedRequestHoldsCapacity() throws Exception {
+        final BuildDispatcher small = new BuildDispatcher(1);
+        try {
+            small.dispatch(request("delayed", 0), 1);
+            assertThat(small.awaitIdle(100, TimeUnit.MILLISECONDS), is(false));
+            assertThat(dispatched.isEmpty(), is(true));
+
+            long start = System.nanoTime();
+            small.dispatch(request("next", 0), 0);
+            assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500), is(true));
+
+            assertThat(small.awaitIdle(10, TimeUnit.SECONDS), is(true));
+            assertThat(dispatched.toString(), is("[delayed, next]"));
+        } finally {
+            small.shutdown();
+        }
+    }
+
+    @Test
+    public void testBlocksWhenFull() throws Exception {
+        final BuildDispatcher small = new BuildDispatcher(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            small.dispatch(new BuildDispatcher.Request(0) {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, 0);
+
+            Thread sender = new Thread() {
+                @Override
+                public void run() {
+                    small.dispatch(request("second", 0), 0);
+                }
+            };
+            sender.start();
+            sender.join(500);
+            assertThat(sender.isAlive(), is(true));
+            assertThat(small.awaitIdle(100, TimeUnit.MILLISECONDS), is(false));
+
+            release.countDown();
+            sender.join(10000);
+            assertThat(sender.isAlive(), is(false));
+            assertThat(small.awaitIdle(10, TimeUnit.SECONDS), is(true));
+            assertThat(dispatched.toString(), is("[second]"));
+        } finally {
+            release.countDown();
+            small.shutdown();
+        }
+    }
+}
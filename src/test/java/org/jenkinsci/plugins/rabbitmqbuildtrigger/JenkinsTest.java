@@ -1,14 +1,25 @@
 package org.jenkinsci.plugins.rabbitmqbuildtrigger;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 import jenkins.model.Jenkins;
 import hudson.model.Build;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
 import hudson.model.ParametersAction;
 import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.StringParameterDefinition;
 import hudson.tasks.Shell;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
@@ -26,6 +37,7 @@ import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.recipes.LocalData;
 
+import com.gargoylesoftware.htmlunit.Page;
 import com.rabbitmq.client.AMQP;
 
 public class JenkinsTest {
@@ -78,6 +90,182 @@ public class JenkinsTest {
         assertThat(project.getBuilds().isEmpty(), is(true));
     }
 
+    @Test
+    public void testJournalWithoutTokenAndReplay() throws Exception {
+        RemoteBuildTrigger trigger = new RemoteBuildTrigger("trigger-token");
+        FreeStyleProject project = j.createFreeStyleProject("triggered-project-journal");
+        project.addTrigger(trigger);
+        project.getBuildersList().add(new Shell("echo TRIGGERED"));
+        trigger.start(project, false);
+
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        String msg = "{\"project\":\"triggered-project-journal\",\"token\":\"trigger-token\"}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+        msg = "{\"project\":\"triggered-project-journal\",\"token\":\"wrong-token\"}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+
+        waitForBuildCompleted(project);
+        j.waitUntilNoActivity();
+        assertThat(project.getBuilds().size(), is(1));
+
+        TriggerJournal journal = listener.getJournal();
+        assertThat(journal, is(notNullValue()));
+        List<TriggerJournal.Entry> entries = journal.query(null, TriggerJournal.Outcome.RECEIVED,
+                0, System.currentTimeMillis(), 10);
+        assertThat(entries.size(), is(2));
+        for (TriggerJournal.Entry e : entries) {
+            String body = new String(e.getBody(), "UTF-8");
+            assertThat(body, containsString("triggered-project-journal"));
+            assertThat(body, not(containsString("token")));
+        }
+
+        long original = entries.get(0).getSeq();
+        Map<String, Long> counts = listener.getDeadLetterRouter().getCounts();
+
+        assertThat(listener.replay(0, System.currentTimeMillis(), 10), is(1));
+        j.waitUntilNoActivity();
+        assertThat(project.getBuilds().size(), is(2));
+
+        entries = journal.query(null, TriggerJournal.Outcome.RECEIVED, 0, System.currentTimeMillis(), 10);
+        assertThat(entries.size(), is(3));
+        assertThat(entries.get(2).getDetail(), is("Replay of seq " + original));
+
+        // replayed message is not replayed again.
+        assertThat(listener.replay(0, System.currentTimeMillis(), 10), is(1));
+        j.waitUntilNoActivity();
+        assertThat(project.getBuilds().size(), is(3));
+        assertThat(listener.getDeadLetterRouter().getCounts(), is(counts));
+    }
+
+    @Test
+    public void testJournalQueryBadRequest() throws Exception {
+        JenkinsRule.WebClient wc = j.createWebClient();
+        wc.setThrowExceptionOnFailingStatusCode(false);
+
+        String[] queries = {"query?outcome=BOGUS", "query?from=yesterday", "query?limit=many"};
+        for (String query : queries) {
+            Page page = wc.getPage(j.getURL() + "rabbitmq-trigger-journal/" + query);
+            assertThat(query, page.getWebResponse().getStatusCode(), is(400));
+        }
+        Page page = wc.getPage(j.getURL() + "rabbitmq-trigger-journal/query?outcome=scheduled");
+        assertThat(page.getWebResponse().getStatusCode(), is(200));
+    }
+
+    @Test
+    public void testReplayUnmatched() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("triggered-project-replay-unmatched");
+        project.getBuildersList().add(new Shell("echo TRIGGERED"));
+
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        String msg = "{\"project\":\"triggered-project-replay-unmatched\",\"token\":\"trigger-token\"}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+
+        RemoteBuildTrigger trigger = new RemoteBuildTrigger("trigger-token");
+        project.addTrigger(trigger);
+        trigger.start(project, false);
+
+        assertThat(listener.replay(0, System.currentTimeMillis(), 10), is(0));
+        assertThat(listener.getDispatcher().awaitIdle(10, TimeUnit.SECONDS), is(true));
+        assertThat(j.getInstance().getQueue().getItem(project), is(nullValue()));
+        assertThat(project.getBuilds().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testTriggerBuildWithFilter() throws Exception {
+        RemoteBuildTrigger trigger = new RemoteBuildTrigger("trigger-token");
+        trigger.setFilter("$.branch =~ 'release/.*'");
+        FreeStyleProject project = j.createFreeStyleProject("triggered-project-filter");
+        project.addTrigger(trigger);
+        project.getBuildersList().add(new Shell("echo TRIGGERED"));
+        trigger.start(project, false);
+
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        String msg = "{\"project\":\"triggered-project-filter\",\"token\":\"trigger-token\",\"branch\":\"master\"}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+        assertThat(listener.getDispatcher().awaitIdle(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(j.getInstance().getQueue().getItem(project), is(nullValue()));
+
+        msg = "{\"project\":\"triggered-project-filter\",\"token\":\"trigger-token\",\"branch\":\"release/1.0\"}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+
+        waitForBuildCompleted(project);
+        j.waitUntilNoActivity();
+
+        assertThat(project.getBuilds().size(), is(1));
+    }
+
+    @Test
+    public void testTriggerBuildWithInvalidFilter() throws Exception {
+        RemoteBuildTrigger trigger = new RemoteBuildTrigger("trigger-token");
+        trigger.setFilter("$.branch ==");
+        FreeStyleProject project = j.createFreeStyleProject("triggered-project-invalid-filter");
+        project.addTrigger(trigger);
+        trigger.start(project, false);
+        assertThat(trigger.getFilterError(), is(notNullValue()));
+
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        String msg = "{\"project\":\"triggered-project-invalid-filter\",\"token\":\"trigger-token\"}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+        assertThat(listener.getDispatcher().awaitIdle(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(j.getInstance().getQueue().getItem(project), is(nullValue()));
+        List<TriggerJournal.Entry> entries = listener.getJournal().query("triggered-project-invalid-filter",
+                TriggerJournal.Outcome.FILTERED, 0, System.currentTimeMillis(), 10);
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getDetail(), startsWith("Invalid filter: "));
+    }
+
+    @Test
+    public void testTriggerBuildWithQuietPeriod() throws Exception {
+        RemoteBuildTrigger trigger = new RemoteBuildTrigger("trigger-token");
+        FreeStyleProject project = j.createFreeStyleProject("triggered-project-quiet");
+        project.addTrigger(trigger);
+        project.getBuildersList().add(new Shell("echo TRIGGERED"));
+        trigger.start(project, false);
+
+        String msg = "{\"project\":\"triggered-project-quiet\",\"token\":\"trigger-token\","
+                + "\"quietPeriod\":3,\"priority\":5}";
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        for (int i = 0; i < 5; i++) {
+            listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+        }
+        assertThat(listener.getDispatcher().awaitIdle(10, TimeUnit.SECONDS), is(true));
+
+        Queue.Item item = j.getInstance().getQueue().getItem(project);
+        assertThat(item, is(notNullValue()));
+        assertThat(RemoteBuildPriorityAction.getPriority(item), is(5));
+
+        waitForBuildCompleted(project);
+        j.waitUntilNoActivity();
+
+        assertThat(project.getBuilds().size(), is(1));
+    }
+
+    @Test
+    public void testTriggerBuildWithDelayHeader() throws Exception {
+        RemoteBuildTrigger trigger = new RemoteBuildTrigger("trigger-token");
+        FreeStyleProject project = j.createFreeStyleProject("triggered-project-delay");
+        project.addTrigger(trigger);
+        project.getBuildersList().add(new Shell("echo TRIGGERED"));
+        trigger.start(project, false);
+
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("delay", 2);
+        String msg = "{\"project\":\"triggered-project-delay\",\"token\":\"trigger-token\"}";
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        listener.onReceive("trigger-queue", "application/json", headers, msg.getBytes("UTF-8"));
+
+        assertThat(j.getInstance().getQueue().getItem(project), is(nullValue()));
+        assertThat(listener.getDispatcher().awaitIdle(10, TimeUnit.SECONDS), is(true));
+
+        waitForBuildCompleted(project);
+
+        FreeStyleBuild build = project.getBuilds().getFirstBuild();
+        String s = FileUtils.readFileToString(build.getLogFile());
+        assertThat(s, containsString("TRIGGERED"));
+    }
+
     @Test
     public void testTriggerWithPublisher() throws Exception {
         new NonStrictExpectations() {{
@@ -124,6 +312,168 @@ public class JenkinsTest {
         }};
     }
 
+    @Test
+    public void testDeadLetterUnmatched() throws Exception {
+        new NonStrictExpectations() {{
+            PublishChannelFactory.getPublishChannel(); result = channel;
+            channel.isOpen(); result = true;
+        }};
+        RemoteBuildGlobalConfiguration config = RemoteBuildGlobalConfiguration.get();
+        config.setDeadLetterExchange("dead-letter");
+        config.setDeadLetterRoutingKey("rejected");
+
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        long before = listener.getDeadLetterRouter().getCounts().get("UNMATCHED");
+
+        String msg = "{\"project\":\"no-such-project\",\"token\":\"trigger-token\"}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+
+        assertThat(listener.getDeadLetterRouter().getCounts().get("UNMATCHED"), is(before + 1));
+
+        new Verifications() {{
+            String exchangeName;
+            String routingKey;
+            AMQP.BasicProperties props;
+            channel.publish(
+                    exchangeName=withCapture(),
+                    routingKey=withCapture(),
+                    props=withCapture(),
+                    (byte[])any);
+            times = 1;
+
+            assertThat(exchangeName, is("dead-letter"));
+            assertThat(routingKey, is("rejected"));
+            assertThat(props.getAppId(), is(DeadLetterRouter.DEAD_LETTER_APPID));
+            assertThat(props.getHeaders().get(DeadLetterRouter.HEADER_REASON).toString(), is("UNMATCHED"));
+            assertThat(props.getHeaders().get(DeadLetterRouter.HEADER_QUEUE).toString(), is("trigger-queue"));
+        }};
+    }
+
+    @Test
+    public void testDeadLetterNotJsonObject() throws Exception {
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        long before = listener.getDeadLetterRouter().getCounts().get("INVALID_FORMAT");
+
+        String[] messages = {"[\"triggered-project\"]", "null"};
+        for (String msg : messages) {
+            listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+        }
+
+        assertThat(listener.getDeadLetterRouter().getCounts().get("INVALID_FORMAT"), is(before + messages.length));
+        List<TriggerJournal.Entry> entries = listener.getJournal().query(null, TriggerJournal.Outcome.INVALID,
+                0, System.currentTimeMillis(), 10);
+        assertThat(entries.size(), is(messages.length));
+        for (TriggerJournal.Entry e : entries) {
+            assertThat(e.getDetail(), is("Not a JSON object"));
+        }
+    }
+
+    @Test
+    public void testDeadLetterParameterWithoutName() throws Exception {
+        RemoteBuildTrigger trigger = new RemoteBuildTrigger("trigger-token");
+        FreeStyleProject project = j.createFreeStyleProject("triggered-project-bad-parameter");
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("HOGE", "hoge")));
+        project.addTrigger(trigger);
+        trigger.start(project, false);
+
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        long before = listener.getDeadLetterRouter().getCounts().get("INVALID_FORMAT");
+
+        String msg = "{\"project\":\"triggered-project-bad-parameter\",\"token\":\"trigger-token\","
+                + "\"parameter\":[{\"value\":\"fuga\"}]}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+        assertThat(listener.getDispatcher().awaitIdle(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(listener.getDeadLetterRouter().getCounts().get("INVALID_FORMAT"), is(before + 1));
+        assertThat(j.getInstance().getQueue().getItem(project), is(nullValue()));
+        List<TriggerJournal.Entry> entries = listener.getJournal().query("triggered-project-bad-parameter",
+                TriggerJournal.Outcome.INVALID, 0, System.currentTimeMillis(), 10);
+        assertThat(entries.size(), is(1));
+
+        // worker is still alive.
+        msg = "{\"project\":\"triggered-project-bad-parameter\",\"token\":\"trigger-token\"}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+        waitForBuildCompleted(project);
+    }
+
+    @Test
+    public void testDeadLetterTokenMismatch() throws Exception {
+        new NonStrictExpectations() {{
+            PublishChannelFactory.getPublishChannel(); result = channel;
+            channel.isOpen(); result = true;
+        }};
+        RemoteBuildGlobalConfiguration config = RemoteBuildGlobalConfiguration.get();
+        config.setDeadLetterExchange("dead-letter");
+
+        RemoteBuildTrigger trigger = new RemoteBuildTrigger("trigger-token");
+        FreeStyleProject project = j.createFreeStyleProject("triggered-project-mismatch");
+        project.addTrigger(trigger);
+        trigger.start(project, false);
+
+        RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        long before = listener.getDeadLetterRouter().getCounts().get("TOKEN_MISMATCH");
+
+        String msg = "{\"project\":\"triggered-project-mismatch\",\"token\":\"wrong-token\"}";
+        listener.onReceive("trigger-queue", "application/json", null, msg.getBytes("UTF-8"));
+        assertThat(listener.getDispatcher().awaitIdle(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(listener.getDeadLetterRouter().getCounts().get("TOKEN_MISMATCH"), is(before + 1));
+        assertThat(j.getInstance().getQueue().getItem(project), is(nullValue()));
+
+        new Verifications() {{
+            AMQP.BasicProperties props;
+            byte[] body;
+            channel.publish(anyString, anyString, props = withCapture(), body = withCapture());
+            times = 1;
+
+            assertThat(props.getHeaders().get(DeadLetterRouter.HEADER_REASON).toString(), is("TOKEN_MISMATCH"));
+            assertThat(new String(body, "UTF-8"), not(containsString("wrong-token")));
+        }};
+    }
+
+    @Test
+    public void testDeadLetterLogRateLimit() throws Exception {
+        final List<LogRecord> records = new CopyOnWriteArrayList<LogRecord>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(DeadLetterRouter.class.getName());
+        logger.addHandler(handler);
+        try {
+            DeadLetterRouter router = new DeadLetterRouter();
+            for (int i = 0; i < 15; i++) {
+                router.reject(DeadLetterRouter.Reason.UNMATCHED, "no-such-project", "trigger-queue",
+                        "application/json", null, "{}".getBytes("UTF-8"));
+            }
+            router.reject(DeadLetterRouter.Reason.NO_TOKEN, "project", "trigger-queue",
+                    "application/json", null, "{}".getBytes("UTF-8"));
+
+            assertThat(router.getCounts().get("UNMATCHED"), is(15L));
+            assertThat(router.getCounts().get("NO_TOKEN"), is(1L));
+            int logged = 0;
+            for (LogRecord record : records) {
+                if (record.getMessage().startsWith("Rejected message")) {
+                    logged++;
+                }
+            }
+            // limit is per reason, so NO_TOKEN is still logged.
+            assertThat(logged, is(11));
+        } finally {
+            logger.removeHandler(handler);
+        }
+    }
+
     @Test
     @LocalData
     public void testTriggerBuildWithParameter() throws Exception {
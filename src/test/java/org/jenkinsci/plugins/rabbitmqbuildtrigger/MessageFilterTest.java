@@ -0,0 +1,121 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class MessageFilterTest {
+
+    private static final Logger LOGGER = Logger.getLogger(MessageFilterTest.class.getName());
+
+    private static final JSONObject JSON = (JSONObject) JSONSerializer.toJSON(
+            "{\"project\":\"p\",\"branch\":\"release/1.0\",\"draft\":false,\"number\":3,"
+            + "\"commit\":{\"author\":\"rin\",\"key with space\":\"x\"},\"labels\":[\"a\",\"b\"],\"none\":null}");
+
+    private static final Map<String, Object> HEADERS = new HashMap<String, Object>();
+    static {
+        HEADERS.put("env", "prod");
+        HEADERS.put("x-retry", 2);
+    }
+
+    private static boolean eval(String expression) throws ParseException {
+        return MessageFilter.compile(expression).matches(JSON, HEADERS);
+    }
+
+    @Test
+    public void testComparison() throws Exception {
+        assertThat(eval("$.branch == 'release/1.0'"), is(true));
+        assertThat(eval("$.branch == release"), is(false));
+        assertThat(eval("$.branch != release"), is(true));
+        assertThat(eval("$.number == 3"), is(true));
+        assertThat(eval("$.draft == false"), is(true));
+        assertThat(eval("$.commit.author == rin"), is(true));
+        assertThat(eval("$.commit['key with space'] == x"), is(true));
+        assertThat(eval("$.labels[1] == b"), is(true));
+        assertThat(eval("$.labels[2] == b"), is(false));
+        assertThat(eval("$.missing == x"), is(false));
+        assertThat(eval("$.missing != x"), is(true));
+    }
+
+    @Test
+    public void testRegex() throws Exception {
+        assertThat(eval("$.branch =~ 'release/.*'"), is(true));
+        assertThat(eval("$.branch =~ release/.*"), is(true));
+        assertThat(eval("$.branch =~ release"), is(false));
+        assertThat(eval("$.missing =~ '.*'"), is(false));
+    }
+
+    @Test
+    public void testHeader() throws Exception {
+        assertThat(eval("header.env == prod"), is(true));
+        assertThat(eval("header['env'] == \"prod\""), is(true));
+        assertThat(eval("header.x-retry == 2"), is(true));
+        assertThat(eval("header.missing"), is(false));
+        assertThat(MessageFilter.compile("header.env == prod").matches(JSON, null), is(false));
+    }
+
+    @Test
+    public void testExistsAndLogic() throws Exception {
+        assertThat(eval("$.branch"), is(true));
+        assertThat(eval("$.draft"), is(false));
+        assertThat(eval("$.none"), is(false));
+        assertThat(eval("!$.draft"), is(true));
+        assertThat(eval("$.branch =~ 'release/.*' && header.env == prod"), is(true));
+        assertThat(eval("$.draft || header.env == dev"), is(false));
+        assertThat(eval("($.draft || header.env == prod) && !header.missing"), is(true));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        String[] invalid = {"", "branch == x", "$.a ==", "$.a =~ '['", "($.a", "header", "$.a == b c", "$.a == 'b",
+            "$.a[99999999999]"};
+        for (String expression : invalid) {
+            try {
+                MessageFilter.compile(expression);
+                fail("Should be invalid: " + expression);
+            } catch (ParseException e) {
+                assertThat(e.getMessage(), is(notNullValue()));
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidNeverMatches() throws Exception {
+        MessageFilter.Invalid filter = new MessageFilter.Invalid("error");
+        assertThat(filter.matches(JSON, HEADERS), is(false));
+        assertThat(filter.getError(), is("error"));
+    }
+
+    /**
+     * Measures evaluation cost. Run with -Dbenchmark=true.
+     */
+    @Test
+    public void testEvaluationCost() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        MessageFilter filter = MessageFilter.compile("$.branch =~ 'release/.*' && header.env == prod && !$.draft");
+        int warmup = 100000;
+        int count = 1000000;
+        for (int i = 0; i < warmup; i++) {
+            filter.matches(JSON, HEADERS);
+        }
+        long start = System.nanoTime();
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            if (filter.matches(JSON, HEADERS)) {
+                matched++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assertThat(matched, is(count));
+        LOGGER.info(String.format("Filter evaluation: %.1f ns/message", (double) elapsed / count));
+    }
+}
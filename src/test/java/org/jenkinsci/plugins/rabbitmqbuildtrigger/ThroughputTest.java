@@ -0,0 +1,252 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import mockit.Delegate;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
+import org.jenkinsci.plugins.rabbitmqconsumer.publishers.PublishChannel;
+import org.jenkinsci.plugins.rabbitmqconsumer.publishers.PublishChannelFactory;
+import org.jenkinsci.plugins.rabbitmqconsumer.publishers.PublishResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * End-to-end throughput test without real broker.
+ *
+ * Message delivery is simulated by calling {@link RemoteBuildListener#onReceive}
+ * from sender threads, as rabbitmq-consumer does, and {@link PublishChannel} is
+ * replaced by an in-process fake. Load is tuned by system properties:
+ *
+ * <pre>
+ * loadtest.jobs          number of jobs (default 20)
+ * loadtest.messages      number of messages (default 2000)
+ * loadtest.rate          messages per second, 0 for unlimited (default 0)
+ * loadtest.threads       sender threads (default 4)
+ * loadtest.minThroughput minimum messages per second to pass (default 50)
+ * </pre>
+ *
+ * The default floor is low enough for a loaded CI agent and only catches
+ * gross regressions. Set a higher floor for dedicated performance runs.
+ *
+ * Latency to queued is taken from the intended send time to the SCHEDULED
+ * entry of the message in trigger journal, so journal must be enabled.
+ *
+ * Build latency is taken from build start to publish, not to build completion.
+ * {@link RemoteBuildPublisher} is a Notifier which runs inside the build, so
+ * the build is not completed yet when the message is published.
+ */
+public class ThroughputTest {
+    // CS IGNORE VisibilityModifier FOR NEXT 3 LINES. REASON: Mocks tests.
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Mocked
+    PublishChannelFactory factory = null;
+
+    @Mocked
+    PublishChannel channel = null;
+
+    @Mocked
+    Future<PublishResult> future = null;
+
+    private static final int JOBS = Integer.getInteger("loadtest.jobs", 20);
+    private static final int MESSAGES = Integer.getInteger("loadtest.messages", 2000);
+    private static final int RATE = Integer.getInteger("loadtest.rate", 0);
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 4);
+    private static final int MIN_THROUGHPUT = Integer.getInteger("loadtest.minThroughput", 50);
+
+    private static final Logger LOGGER = Logger.getLogger(ThroughputTest.class.getName());
+
+    private static final String TOKEN = "trigger-token";
+    private static final String PROJECT_PREFIX = "load-project-";
+    private static final String KEY_ID = "loadtestId";
+
+    private final Queue<long[]> published = new ConcurrentLinkedQueue<long[]>();
+
+    @Test
+    public void testThroughput() throws Exception {
+        new NonStrictExpectations() {{
+            PublishChannelFactory.getPublishChannel(); result = channel;
+            channel.isOpen(); result = true;
+            channel.publish(anyString, anyString, (AMQP.BasicProperties) any, (byte[]) any);
+            result = new Delegate() {
+                @SuppressWarnings("unused")
+                Future<PublishResult> publish(String exchangeName, String routingKey,
+                        AMQP.BasicProperties props, byte[] body) throws Exception {
+                    JSONObject json = (JSONObject) JSONSerializer.toJSON(new String(body, "UTF-8"));
+                    int index = Integer.parseInt(json.getString("project").substring(PROJECT_PREFIX.length()));
+                    published.add(new long[] {System.currentTimeMillis(), index, json.getInt("number")});
+                    return future;
+                }
+            };
+            future.get(); result = new PublishResult(true, "", "");
+        }};
+
+        FreeStyleProject[] projects = new FreeStyleProject[JOBS];
+        for (int i = 0; i < JOBS; i++) {
+            RemoteBuildTrigger trigger = new RemoteBuildTrigger(TOKEN);
+            projects[i] = j.createFreeStyleProject(PROJECT_PREFIX + i);
+            projects[i].addTrigger(trigger);
+            projects[i].getPublishersList().add(new RemoteBuildPublisher("exchange", "routing-key"));
+            trigger.start(projects[i], false);
+        }
+
+        final RemoteBuildListener listener = MessageQueueListener.all().get(RemoteBuildListener.class);
+        // Message id is kept in journal, so that queued time can be matched with send time.
+        final byte[][] bodies = new byte[MESSAGES][];
+        for (int m = 0; m < MESSAGES; m++) {
+            bodies[m] = ("{\"project\":\"" + PROJECT_PREFIX + (m % JOBS) + "\",\"token\":\"" + TOKEN
+                    + "\",\"" + KEY_ID + "\":" + m + "}").getBytes("UTF-8");
+        }
+
+        final long[] latencies = new long[MESSAGES];
+        final long[] sent = new long[MESSAGES];
+        final long baseNanos = System.nanoTime();
+        final long baseMillis = System.currentTimeMillis();
+        final long intervalNanos = RATE > 0 ? TimeUnit.SECONDS.toNanos(1) * THREADS / RATE : 0;
+        final CountDownLatch ready = new CountDownLatch(THREADS);
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Thread> senders = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            Thread sender = new Thread("load-sender-" + t) {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    for (int n = 0, m = offset; m < MESSAGES; n++, m += THREADS) {
+                        // Latency is taken from the intended send time to avoid coordinated omission.
+                        long intended = start + n * intervalNanos;
+                        long wait = intended - System.nanoTime();
+                        if (wait > 0) {
+                            try {
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        if (intervalNanos == 0) {
+                            intended = System.nanoTime();
+                        }
+                        sent[m] = baseMillis + TimeUnit.NANOSECONDS.toMillis(intended - baseNanos);
+                        listener.onReceive("load-queue", "application/json", null, bodies[m]);
+                        latencies[m] = System.nanoTime() - intended;
+                    }
+                }
+            };
+            senders.add(sender);
+            sender.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        // Builds are scheduled by dispatch stage, so wait for it to count time to queued.
+        assertThat(listener.getDispatcher().awaitIdle(120, TimeUnit.SECONDS), is(true));
+        long elapsed = System.nanoTime() - start;
+
+        long[] queued = getQueuedLatencies(listener.getJournal(), sent);
+
+        j.waitUntilNoActivityUpTo(120 * 1000);
+
+        List<Long> publishLatencies = new ArrayList<Long>();
+        for (long[] p : published) {
+            FreeStyleBuild build = projects[(int) p[1]].getBuildByNumber((int) p[2]);
+            assertThat(build, is(notNullValue()));
+            publishLatencies.add(p[0] - build.getStartTimeInMillis());
+        }
+
+        int builds = 0;
+        for (FreeStyleProject p : projects) {
+            assertThat(p.getName() + " is not built.", p.getBuilds().isEmpty(), is(false));
+            builds += p.getBuilds().size();
+        }
+        assertThat(published.size(), is(builds));
+
+        double throughput = MESSAGES / (elapsed / 1e9);
+        Arrays.sort(latencies);
+        long[] publish = new long[publishLatencies.size()];
+        for (int i = 0; i < publish.length; i++) {
+            publish[i] = publishLatencies.get(i);
+        }
+        Arrays.sort(publish);
+
+        LOGGER.info(String.format("Throughput: %d messages, %d jobs, %d threads, rate %s",
+                MESSAGES, JOBS, THREADS, RATE > 0 ? String.valueOf(RATE) : "unlimited"));
+        LOGGER.info(String.format("  arrival to queued: %.1f msg/s, p50 %d ms, p95 %d ms, p99 %d ms, max %d ms",
+                throughput, percentile(queued, 50), percentile(queued, 95),
+                percentile(queued, 99), queued[queued.length - 1]));
+        LOGGER.info(String.format("  arrival to receive return: p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms",
+                percentile(latencies, 50) / 1e6, percentile(latencies, 95) / 1e6,
+                percentile(latencies, 99) / 1e6, latencies[latencies.length - 1] / 1e6));
+        LOGGER.info(String.format("  build start to publish (publisher runs inside build, not completion): "
+                + "%d builds, p50 %d ms, p95 %d ms, p99 %d ms",
+                builds, percentile(publish, 50), percentile(publish, 95), percentile(publish, 99)));
+
+        assertTrue(String.format("Throughput %.1f msg/s is below %d msg/s", throughput, MIN_THROUGHPUT),
+                throughput >= MIN_THROUGHPUT);
+    }
+
+    /**
+     * Gets sorted latencies from send time to queued in millis, using
+     * SCHEDULED entries in journal. Journal time is in millis.
+     */
+    private static long[] getQueuedLatencies(TriggerJournal journal, long[] sent) throws Exception {
+        assertThat("Journal is required to measure time to queued.", journal, is(notNullValue()));
+        Map<Long, Integer> ids = new HashMap<Long, Integer>();
+        for (TriggerJournal.Entry e : journal.query(null, TriggerJournal.Outcome.RECEIVED, 0, Long.MAX_VALUE,
+                Integer.MAX_VALUE)) {
+            JSONObject json = (JSONObject) JSONSerializer.toJSON(new String(e.getBody(), "UTF-8"));
+            ids.put(e.getSeq(), json.getInt(KEY_ID));
+        }
+        long[] queued = new long[sent.length];
+        int count = 0;
+        for (TriggerJournal.Entry e : journal.query(null, TriggerJournal.Outcome.SCHEDULED, 0, Long.MAX_VALUE,
+                Integer.MAX_VALUE)) {
+            Integer id = ids.get(e.getSeq());
+            if (id != null) {
+                queued[count++] = Math.max(0, e.getTime() - sent[id]);
+            }
+        }
+        assertThat("Not all messages are queued.", count, is(sent.length));
+        Arrays.sort(queued);
+        return queued;
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.rabbitmqbuildtrigger;
+
+import java.io.File;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.jenkinsci.plugins.rabbitmqbuildtrigger.TriggerJournal.Outcome;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TriggerJournalTest {
+    // CS IGNORE VisibilityModifier FOR NEXT 1 LINES. REASON: Rule.
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRecordAndQuery() throws Exception {
+        TriggerJournal journal = new TriggerJournal(tmp.getRoot(), 1024 * 1024, 4);
+        long seq = journal.received("trigger-queue", "application/json", null, "{}".getBytes("UTF-8"));
+        journal.record(seq, Outcome.SCHEDULED, "project-a", null, 42);
+        journal.record(seq, Outcome.REJECTED, "project-b", "Token mismatch", -1);
+
+        List<TriggerJournal.Entry> entries = journal.query("project-a", null, 0, Long.MAX_VALUE, 10);
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getOutcome(), is(Outcome.SCHEDULED));
+        assertThat(entries.get(0).getQueueItemId(), is(42L));
+        assertThat(entries.get(0).getSeq(), is(seq));
+
+        entries = journal.query(null, Outcome.RECEIVED, 0, Long.MAX_VALUE, 10);
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getQueueName(), is("trigger-queue"));
+        assertThat(new String(entries.get(0).getBody(), "UTF-8"), is("{}"));
+    }
+
+    @Test
+    public void testRollAndReload() throws Exception {
+        TriggerJournal journal = new TriggerJournal(tmp.getRoot(), 4096, 3);
+        long last = 0;
+        for (int i = 0; i < 1000; i++) {
+            last = journal.received("trigger-queue", "application/json", null, new byte[64]);
+            journal.record(last, Outcome.UNMATCHED, "project-" + (i % 10), null, -1);
+        }
+        journal.close();
+
+        File[] segments = tmp.getRoot().listFiles();
+        assertThat(segments.length, is(3));
+
+        TriggerJournal reloaded = new TriggerJournal(tmp.getRoot(), 4096, 3);
+        List<TriggerJournal.Entry> entries = reloaded.query("project-9", null, 0, Long.MAX_VALUE, 1000);
+        assertThat(entries.isEmpty(), is(false));
+        assertThat(entries.get(entries.size() - 1).getSeq(), is(last));
+        assertThat(reloaded.received("trigger-queue", null, null, null), is(last + 1));
+    }
+
+    @Test
+    public void testTooLargeMessage() throws Exception {
+        TriggerJournal journal = new TriggerJournal(tmp.getRoot(), 1024 * 1024, 4);
+        long large = journal.received("trigger-queue", "application/json", null,
+                new byte[TriggerJournal.MAX_RECORD_SIZE + 1]);
+        long small = journal.received("trigger-queue", "application/json", null, "{}".getBytes("UTF-8"));
+        journal.close();
+
+        TriggerJournal reloaded = new TriggerJournal(tmp.getRoot(), 1024 * 1024, 4);
+        List<TriggerJournal.Entry> entries = reloaded.query(null, Outcome.RECEIVED, 0, Long.MAX_VALUE, 10);
+        assertThat(entries.size(), is(2));
+        assertThat(entries.get(0).getSeq(), is(large));
+        assertThat(entries.get(0).getBody(), is(nullValue()));
+        assertThat(entries.get(0).getDetail(), containsString("too large"));
+        assertThat(entries.get(1).getSeq(), is(small));
+        assertThat(new String(entries.get(1).getBody(), "UTF-8"), is("{}"));
+    }
+}